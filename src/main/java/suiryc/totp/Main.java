@@ -1,81 +1,186 @@
 package suiryc.totp;
 
+import java.io.BufferedReader;
+import java.io.Console;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.stream.Collectors;
 import javafx.application.Application;
 import javafx.stage.Stage;
 import suiryc.totp.controller.MainController;
+import suiryc.totp.core.Base32Decoder;
+import suiryc.totp.core.SecretSource;
 import suiryc.totp.core.TOTP;
+import suiryc.totp.core.TOTPBatch;
 import suiryc.totp.core.TimeInterval;
+import suiryc.totp.core.Vault;
 
 public class Main {
 
     private static final List<TimeInterval> timeIntervals = new ArrayList<>();
     private static final List<TOTP> totps = new ArrayList<>();
+    private static final Map<TimeInterval, TOTPBatch> batches = new HashMap<>();
+    private static BufferedReader stdin;
 
     public static void main(String[] args) throws Exception {
-        for (String arg : args) {
-            String secret = null;
-            String hashAlgorithm = TOTP.HASH_ALGORITHM;
-            int otpLength = TOTP.OTP_LENGTH;
-            int interval = TOTP.TIME_INTERVAL;
-
-            String[] split = arg.split("=", 2);
-            if (split.length != 2) throw new Exception("Invalid TOTP format: expected 'label=value', got '" + arg + "'");
-            String label = split[0].trim();
-            split = split[1].split(",");
-            if (split.length == 1) {
-                secret = split[0].trim();
-            } else {
-                for (String s: split) {
-                    String[] param = s.split(":", 2);
-                    if (param.length != 2) {
-                        throw new Exception("Invalid TOTP format: expected 'label=key1:value1,... with a secret', got '" + arg + "'");
+        for (int argIdx = 0; argIdx < args.length; argIdx++) {
+            String arg = args[argIdx];
+            switch (arg) {
+                case "--vault":
+                    // Load accounts from encrypted vault.
+                    if (argIdx + 1 >= args.length) throw new Exception("Missing vault file: expected '--vault <file>'");
+                    Path vaultPath = Paths.get(args[++argIdx]);
+                    char[] password = readPassword("Vault password: ");
+                    try (Vault vault = Vault.open(vaultPath, password)) {
+                        for (int idx = 0; idx < vault.size(); idx++) {
+                            addTOTP(vault.get(idx));
+                        }
+                    } finally {
+                        Arrays.fill(password, ' ');
                     }
-                    String paramValue = param[1].trim();
-                    switch (param[0].trim().toLowerCase()) {
-                        case "secret":
-                            secret = paramValue;
-                            break;
-                        case "hash":
-                            hashAlgorithm = paramValue;
-                            break;
-                        case "len":
-                            otpLength = Integer.parseInt(paramValue);
-                            break;
-                        case "interval":
-                            interval = Integer.parseInt(paramValue);
-                            break;
-                        default:
-                            throw new Exception("Unhandled key=<" + label + "> parameter=<" + param[0] + ">");
+                    break;
+                case "--vault-import":
+                    // Create encrypted vault from accounts file, then exit.
+                    if (argIdx + 2 >= args.length) {
+                        throw new Exception("Missing parameters: expected '--vault-import <vault file> <accounts file>'");
                     }
-                }
-                if (secret == null) {
-                    throw new Exception("Invalid TOTP format: expected 'label=key1:value1,... with a secret', got '" + arg + "'");
-                }
+                    importVault(Paths.get(args[argIdx + 1]), Paths.get(args[argIdx + 2]));
+                    return;
+                default:
+                    addTOTP(parseAccount(arg));
             }
-            int finalInterval = interval;
-            TimeInterval timeInterval = timeIntervals.stream().filter(v -> v.getIntervalSeconds() == finalInterval).findFirst().orElseGet(() -> {
-                TimeInterval ti = new TimeInterval(finalInterval);
-                timeIntervals.add(ti);
-                return ti;
-            });
-            TOTP totp = new TOTP(label, secret, hashAlgorithm, otpLength, timeInterval);
-            totps.add(totp);
         }
 
         // Sort time intervals in reverse order: to display the longer ones
         // (refreshed less often) before the shorted ones.
         timeIntervals.sort((v1, v2) -> (int)(v2.getInterval() - v1.getInterval()));
 
+        // Codes of a time interval group are all refreshed together.
+        for (TimeInterval timeInterval : timeIntervals) {
+            batches.put(timeInterval, new TOTPBatch(totps.stream()
+                    .filter(totp -> totp.getTimeInterval() == timeInterval)
+                    .collect(Collectors.toList())));
+        }
+
         // Start tasks that will display the codes in console and refresh UI.
         timeIntervals.forEach(timeInterval -> new DisplayTask(timeInterval, true));
         // Start UI.
         new App().start(args);
     }
 
+    /**
+     * Parses account.
+     *
+     * Expected format is either 'label=secret' or
+     * 'label=secret:value,hash:value,len:value,interval:value' (secret being
+     * mandatory, other parameters optional).
+     */
+    private static Vault.Account parseAccount(String arg) throws Exception {
+        String secret = null;
+        String hashAlgorithm = TOTP.HASH_ALGORITHM;
+        int otpLength = TOTP.OTP_LENGTH;
+        int interval = TOTP.TIME_INTERVAL;
+
+        String[] split = arg.split("=", 2);
+        if (split.length != 2) throw new Exception("Invalid TOTP format: expected 'label=value', got '" + arg + "'");
+        String label = split[0].trim();
+        split = split[1].split(",");
+        if (split.length == 1) {
+            secret = split[0].trim();
+        } else {
+            for (String s: split) {
+                String[] param = s.split(":", 2);
+                if (param.length != 2) {
+                    throw new Exception("Invalid TOTP format: expected 'label=key1:value1,... with a secret', got '" + arg + "'");
+                }
+                String paramValue = param[1].trim();
+                switch (param[0].trim().toLowerCase()) {
+                    case "secret":
+                        secret = paramValue;
+                        break;
+                    case "hash":
+                        hashAlgorithm = paramValue;
+                        break;
+                    case "len":
+                        otpLength = Integer.parseInt(paramValue);
+                        break;
+                    case "interval":
+                        interval = Integer.parseInt(paramValue);
+                        break;
+                    default:
+                        throw new Exception("Unhandled key=<" + label + "> parameter=<" + param[0] + ">");
+                }
+            }
+            if (secret == null) {
+                throw new Exception("Invalid TOTP format: expected 'label=key1:value1,... with a secret', got '" + arg + "'");
+            }
+        }
+        // Check the secret right away.
+        byte[] decoded = Base32Decoder.decode(secret);
+        Arrays.fill(decoded, (byte)0);
+        if (decoded.length == 0) throw new Exception("Invalid TOTP secret: empty secret for key=<" + label + ">");
+        return new Vault.Account(label, hashAlgorithm, otpLength, interval, SecretSource.base32(secret));
+    }
+
+    private static void addTOTP(Vault.Account account) {
+        int interval = account.getInterval();
+        TimeInterval timeInterval = timeIntervals.stream().filter(v -> v.getIntervalSeconds() == interval).findFirst().orElseGet(() -> {
+            TimeInterval ti = new TimeInterval(interval);
+            timeIntervals.add(ti);
+            return ti;
+        });
+        // Note: secret is only needed (decrypted for vault accounts) upon
+        // first refresh.
+        TOTP totp = new TOTP(account.getLabel(), account.getSecret(), account.getHashAlgorithm(), account.getOtpLength(), timeInterval);
+        totps.add(totp);
+    }
+
+    private static void importVault(Path vaultPath, Path accountsPath) throws Exception {
+        // Accounts file: one account per line, same format as command line
+        // arguments. Empty lines and comments ('#') are ignored.
+        List<Vault.Account> accounts = new ArrayList<>();
+        for (String line : Files.readAllLines(accountsPath)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            accounts.add(parseAccount(line));
+        }
+        char[] password = readPassword("Vault password: ");
+        char[] confirmation = readPassword("Confirm vault password: ");
+        try {
+            if (!Arrays.equals(password, confirmation)) throw new Exception("Vault passwords do not match");
+            Vault.write(vaultPath, password, accounts);
+        } finally {
+            Arrays.fill(password, ' ');
+            Arrays.fill(confirmation, ' ');
+        }
+        System.out.printf("Imported %d account(s) in vault %s%n", accounts.size(), vaultPath);
+    }
+
+    private static char[] readPassword(String prompt) throws Exception {
+        Console console = System.console();
+        if (console != null) {
+            char[] password = console.readPassword("%s", prompt);
+            if (password == null) throw new Exception("No password entered");
+            return password;
+        }
+        // No console (e.g. input is redirected): read standard input.
+        System.out.print(prompt);
+        System.out.flush();
+        if (stdin == null) stdin = new BufferedReader(new InputStreamReader(System.in));
+        String line = stdin.readLine();
+        if (line == null) throw new Exception("No password entered");
+        return line.toCharArray();
+    }
+
     public static class App extends Application {
 
         public void start(String... args) {
@@ -119,14 +224,20 @@ public class Main {
                         timeInterval.getValue(), Math.round(timeInterval.getElapsed() / 1000D),
                         Math.round(timeInterval.getRemaining() / 1000D));
                 labelLength = totps.stream().map(v -> v.getLabel().length()).max(Integer::compareTo).orElse(0);
-                otpLength = totps.stream().map(v -> v.getOtp().length()).max(Integer::compareTo).orElse(0);
+                // Note: codes are only computed upon first refresh.
+                otpLength = totps.stream().map(TOTP::getOtpLength).max(Integer::compareTo).orElse(0);
+                // Refresh codes of all TOTPs using our time interval at once.
+                try {
+                    batches.get(timeInterval).refresh(timeInterval.getValue());
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                }
             }
             for (TOTP totp : totps) {
                 // Only deal with TOTPs using our time interval.
                 if (totp.getTimeInterval() != timeInterval) continue;
                 try {
                     if (changed) {
-                        totp.refresh();
                         // Display new codes in console.
                         System.out.printf("  %" + labelLength + "s: OTP= %-" + otpLength + "s  OTP+1= %-" + otpLength + "s%n",
                                 totp.getLabel(), totp.getOtp(), totp.getNextOtp());
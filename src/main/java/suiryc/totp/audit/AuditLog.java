@@ -0,0 +1,251 @@
+package suiryc.totp.audit;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import suiryc.totp.core.TOTP;
+
+/**
+ * Audit log of OTP verifications.
+ *
+ * Recording hands a fixed-size record to a lock-free queue and returns: the
+ * calling (verification) thread never blocks on I/O. A single writer thread
+ * drains the queue and appends records to memory-mapped segment files, rotated
+ * once full.
+ *
+ * Segment file layout: header (magic, version, record length) followed by
+ * records; unwritten space is zero-filled. See {@link AuditRecord}.
+ *
+ * If the queue is full (writer not keeping up), or the log is closed (or its
+ * writer failed), records are dropped and counted.
+ */
+public class AuditLog implements Closeable {
+
+    // Default segment size: 64MiB.
+    public static final long SEGMENT_SIZE = 64L * 1024 * 1024;
+
+    // Default queue capacity.
+    public static final int QUEUE_CAPACITY = 64 * 1024;
+
+    static final byte[] MAGIC = "GAUTHAUD".getBytes(StandardCharsets.US_ASCII);
+    static final int VERSION = 1;
+    static final int HEADER_LENGTH = MAGIC.length + Integer.BYTES * 2;
+
+    private static final Pattern SEGMENT_NAME = Pattern.compile("audit-(\\d+)\\.log");
+
+    // How long the writer sleeps when there is nothing to write.
+    private static final long IDLE_PARK_NANOS = 100_000;
+
+    private final Path directory;
+    private final long segmentSize;
+    private final AuditQueue queue;
+    private final LongAdder dropped = new LongAdder();
+    private final Thread writer;
+    private volatile boolean running = true;
+    private volatile Throwable failure;
+
+    private long segmentIdx;
+    private MappedByteBuffer segment;
+
+    /**
+     * Creates audit log.
+     *
+     * Existing segments are kept: records are written in new segments.
+     *
+     * @param directory segments directory
+     * @param segmentSize segment file size
+     * @param queueCapacity records queue capacity
+     */
+    public AuditLog(Path directory, long segmentSize, int queueCapacity) throws IOException {
+        if (segmentSize < HEADER_LENGTH + AuditRecord.LENGTH || segmentSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid segment size: " + segmentSize);
+        }
+        this.directory = directory;
+        // Only keep room for complete records.
+        this.segmentSize = HEADER_LENGTH + ((segmentSize - HEADER_LENGTH) / AuditRecord.LENGTH) * AuditRecord.LENGTH;
+        this.queue = new AuditQueue(queueCapacity);
+        Files.createDirectories(directory);
+        List<Path> segments = listSegments(directory);
+        segmentIdx = segments.isEmpty() ? 0 : segmentIndex(segments.get(segments.size() - 1)) + 1;
+        segment = openSegment(segmentIdx);
+
+        writer = new Thread(this::write, "audit-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public AuditLog(Path directory) throws IOException {
+        this(directory, SEGMENT_SIZE, QUEUE_CAPACITY);
+    }
+
+    /**
+     * Records verification.
+     *
+     * Never blocks.
+     *
+     * @param drift drift (in counters) of accepted code, within -128..127
+     * @return whether record was queued (false if dropped)
+     */
+    public boolean record(int accountId, long counter, boolean accepted, int drift) {
+        if ((drift < Byte.MIN_VALUE) || (drift > Byte.MAX_VALUE)) throw new IllegalArgumentException("Invalid drift: " + drift);
+        boolean queued = running && queue.offer(System.currentTimeMillis(), accountId, counter,
+                accepted ? AuditRecord.ACCEPTED : AuditRecord.REJECTED, (byte)drift);
+        if (queued) {
+            // Check again whether we are closing: if so the record may have
+            // been queued after the final drain, and thus counts as dropped.
+            // Otherwise the final drain (see 'close') is guaranteed to see it.
+            // Notes: the full fence (paired with the one in 'close') prevents
+            // the queue publication from being reordered after this check.
+            VarHandle.fullFence();
+            queued = running;
+        }
+        if (!queued) dropped.increment();
+        return queued;
+    }
+
+    /**
+     * Verifies OTP code and records the result.
+     *
+     * @param totp TOTP to verify code against
+     * @param accountId account id to record
+     * @param code code to verify
+     * @param window how many counters drift is accepted (before and after)
+     * @return whether code was accepted
+     * @see TOTP#verify(String, long, int)
+     */
+    public boolean verify(TOTP totp, int accountId, String code, int window) throws Exception {
+        long counter = System.currentTimeMillis() / totp.getTimeInterval().getInterval();
+        Integer drift = totp.verify(code, counter, window);
+        record(accountId, counter, drift != null, (drift != null) ? drift : 0);
+        return drift != null;
+    }
+
+    /** Gets number of dropped records. */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Closes audit log.
+     *
+     * Queued records are written before returning.
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        VarHandle.fullFence();
+        LockSupport.unpark(writer);
+        boolean interrupted = false;
+        while (true) {
+            try {
+                writer.join();
+                break;
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        if (failure == null) {
+            // Writer is done: drain what producers queued meanwhile.
+            try {
+                drain();
+                segment.force();
+            } catch (Throwable ex) {
+                failure = ex;
+            }
+        }
+        Throwable failure = this.failure;
+        if (failure instanceof IOException) throw (IOException)failure;
+        if (failure != null) throw new IOException("Audit log writer failed", failure);
+    }
+
+    private void write() {
+        try {
+            while (running) {
+                if (drain() == 0) LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        } catch (Throwable ex) {
+            // Any failure (including InternalError upon mapped file I/O
+            // error) stops recording: remember it to report upon closing.
+            failure = ex;
+            running = false;
+        }
+    }
+
+    private int drain() throws IOException {
+        int count = 0;
+        // Only rotate when there is a record to write.
+        while (queue.available()) {
+            if (segment.remaining() < AuditRecord.LENGTH) rotate();
+            queue.poll(segment);
+            count++;
+        }
+        return count;
+    }
+
+    private void rotate() throws IOException {
+        segment.force();
+        segment = openSegment(++segmentIdx);
+    }
+
+    private MappedByteBuffer openSegment(long idx) throws IOException {
+        Path path = directory.resolve(segmentName(idx));
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // Notes: mapping remains valid once the channel is closed.
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            buffer.put(MAGIC).putInt(VERSION).putInt(AuditRecord.LENGTH);
+            return buffer;
+        }
+    }
+
+    static String segmentName(long idx) {
+        return String.format("audit-%010d.log", idx);
+    }
+
+    private static long segmentIndex(Path path) {
+        Matcher matcher = SEGMENT_NAME.matcher(path.getFileName().toString());
+        return matcher.matches() ? Long.parseLong(matcher.group(1)) : -1;
+    }
+
+    /** Lists segment files (ordered). */
+    static List<Path> listSegments(Path directory) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        if (!Files.isDirectory(directory)) return segments;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "audit-*.log")) {
+            for (Path path : stream) {
+                if (segmentIndex(path) >= 0) segments.add(path);
+            }
+        }
+        segments.sort((p1, p2) -> Long.compare(segmentIndex(p1), segmentIndex(p2)));
+        return Collections.unmodifiableList(segments);
+    }
+
+    /** Checks segment header. */
+    static void checkHeader(ByteBuffer buffer, Path path) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        if (buffer.remaining() < HEADER_LENGTH) throw new IOException("Invalid audit segment: " + path);
+        buffer.get(magic);
+        int version = buffer.getInt();
+        int recordLength = buffer.getInt();
+        if (!Arrays.equals(magic, MAGIC) || (version != VERSION) || (recordLength != AuditRecord.LENGTH)) {
+            throw new IOException("Invalid audit segment: " + path);
+        }
+    }
+
+}
@@ -0,0 +1,119 @@
+package suiryc.totp.audit;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded lock-free multi-producer single-consumer queue of audit records.
+ *
+ * Records fields are stored in preallocated arrays: offering does not
+ * allocate, and never blocks (it fails when the queue is full).
+ *
+ * Each slot has a sequence number telling whether it can be written by the
+ * producer claiming it (sequence equals the claimed position) or read by the
+ * consumer (sequence is one more than the position). See Dmitry Vyukov's
+ * bounded MPMC queue.
+ */
+class AuditQueue {
+
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final long[] timestamps;
+    private final int[] accountIds;
+    private final long[] counters;
+    private final byte[] results;
+    private final byte[] drifts;
+
+    // Next position to claim by producers.
+    private final AtomicLong tail = new AtomicLong();
+    // Next position to read by the (single) consumer.
+    private long head;
+
+    /**
+     * Creates queue.
+     *
+     * @param capacity queue capacity, rounded up to a power of two
+     */
+    AuditQueue(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("Invalid queue capacity: " + capacity);
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) size <<= 1;
+        mask = size - 1;
+        sequences = new AtomicLongArray(size);
+        for (int idx = 0; idx < size; idx++) sequences.set(idx, idx);
+        timestamps = new long[size];
+        accountIds = new int[size];
+        counters = new long[size];
+        results = new byte[size];
+        drifts = new byte[size];
+    }
+
+    /** Gets queue capacity. */
+    int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Offers record.
+     *
+     * May be called concurrently by any number of threads.
+     *
+     * @return whether record was queued (false if queue is full)
+     */
+    boolean offer(long timestamp, int accountId, long counter, byte result, byte drift) {
+        long position = tail.get();
+        int idx;
+        while (true) {
+            idx = (int)(position & mask);
+            long diff = sequences.getAcquire(idx) - position;
+            if (diff == 0) {
+                // Slot is free: try to claim it.
+                if (tail.compareAndSet(position, position + 1)) break;
+                position = tail.get();
+            } else if (diff < 0) {
+                // Slot not yet consumed: queue is full.
+                return false;
+            } else {
+                // Another producer claimed this position.
+                position = tail.get();
+            }
+        }
+        timestamps[idx] = timestamp;
+        accountIds[idx] = accountId;
+        counters[idx] = counter;
+        results[idx] = result;
+        drifts[idx] = drift;
+        // Publish record to the consumer.
+        sequences.setRelease(idx, position + 1);
+        return true;
+    }
+
+    /**
+     * Gets whether a record is available.
+     *
+     * Must only be called by the consumer thread.
+     */
+    boolean available() {
+        return sequences.getAcquire((int)(head & mask)) == head + 1;
+    }
+
+    /**
+     * Polls record into buffer.
+     *
+     * Must only be called by the consumer thread. Buffer is expected to have
+     * enough room for a record.
+     *
+     * @return whether a record was available
+     */
+    boolean poll(ByteBuffer buffer) {
+        if (!available()) return false;
+        int idx = (int)(head & mask);
+        AuditRecord.write(buffer, timestamps[idx], accountIds[idx], counters[idx], results[idx], drifts[idx]);
+        // Release slot for producers (next lap).
+        sequences.setRelease(idx, head + mask + 1);
+        head++;
+        return true;
+    }
+
+}
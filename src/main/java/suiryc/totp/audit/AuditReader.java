@@ -0,0 +1,69 @@
+package suiryc.totp.audit;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.function.Consumer;
+
+/**
+ * Audit log reader.
+ *
+ * Can also be run to export records as CSV:
+ * <pre>
+ *   AuditReader &lt;audit directory&gt; [output file]
+ * </pre>
+ * Records are written to standard output when no output file is given.
+ */
+public class AuditReader {
+
+    public static void main(String[] args) throws Exception {
+        if ((args.length < 1) || (args.length > 2)) {
+            throw new Exception("Invalid parameters: expected '<audit directory> [output file]'");
+        }
+        Path directory = Paths.get(args[0]);
+        if (args.length == 1) {
+            export(directory, System.out);
+        } else {
+            try (PrintStream output = new PrintStream(Files.newOutputStream(Paths.get(args[1])), false, "UTF-8")) {
+                export(directory, output);
+            }
+        }
+    }
+
+    /** Exports records as CSV. */
+    public static void export(Path directory, PrintStream output) throws IOException {
+        PrintWriter writer = new PrintWriter(output);
+        writer.println("timestamp,account,counter,result,drift");
+        forEach(directory, record -> writer.printf("%s,%d,%d,%s,%d%n",
+                Instant.ofEpochMilli(record.getTimestamp()), record.getAccountId(), record.getCounter(),
+                record.isAccepted() ? "accepted" : "rejected", record.getDrift()));
+        writer.flush();
+    }
+
+    /**
+     * Reads records.
+     *
+     * Segments are read in order.
+     *
+     * @param directory audit directory
+     * @param consumer records consumer
+     */
+    public static void forEach(Path directory, Consumer<AuditRecord> consumer) throws IOException {
+        for (Path path : AuditLog.listSegments(directory)) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                AuditLog.checkHeader(buffer, path);
+                AuditRecord record;
+                while ((record = AuditRecord.read(buffer)) != null) consumer.accept(record);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,98 @@
+package suiryc.totp.audit;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Audit record of an OTP verification.
+ *
+ * Records have a fixed binary size (big-endian):
+ * <pre>
+ *   timestamp (long, ms since epoch)
+ *   account id (int)
+ *   counter (long)
+ *   result (byte)
+ *   drift (byte)
+ *   padding (2 bytes)
+ * </pre>
+ */
+public class AuditRecord {
+
+    /** Binary record length. */
+    public static final int LENGTH = 24;
+
+    /** Result: code accepted. */
+    public static final byte ACCEPTED = 1;
+    /** Result: code rejected. */
+    public static final byte REJECTED = 2;
+
+    private final long timestamp;
+    private final int accountId;
+    private final long counter;
+    private final byte result;
+    private final byte drift;
+
+    public AuditRecord(long timestamp, int accountId, long counter, byte result, byte drift) {
+        this.timestamp = timestamp;
+        this.accountId = accountId;
+        this.counter = counter;
+        this.result = result;
+        this.drift = drift;
+    }
+
+    /** Gets record timestamp (ms since epoch). */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /** Gets verified account id. */
+    public int getAccountId() {
+        return accountId;
+    }
+
+    /** Gets verification (expected) counter. */
+    public long getCounter() {
+        return counter;
+    }
+
+    /** Gets verification result. */
+    public byte getResult() {
+        return result;
+    }
+
+    /** Gets whether code was accepted. */
+    public boolean isAccepted() {
+        return result == ACCEPTED;
+    }
+
+    /** Gets drift (in counters) of accepted code. */
+    public byte getDrift() {
+        return drift;
+    }
+
+    /** Writes record fields at the buffer position. */
+    static void write(ByteBuffer buffer, long timestamp, int accountId, long counter, byte result, byte drift) {
+        buffer.putLong(timestamp).putInt(accountId).putLong(counter).put(result).put(drift).putShort((short)0);
+    }
+
+    /**
+     * Reads record at the buffer position.
+     *
+     * @return record, or null if there is no (more) record
+     */
+    static AuditRecord read(ByteBuffer buffer) {
+        if (buffer.remaining() < LENGTH) return null;
+        long timestamp = buffer.getLong();
+        // Unwritten (zero-filled) space: end of records.
+        if (timestamp == 0) return null;
+        AuditRecord record = new AuditRecord(timestamp, buffer.getInt(), buffer.getLong(), buffer.get(), buffer.get());
+        buffer.getShort();
+        return record;
+    }
+
+    @Override
+    public String toString() {
+        return "AuditRecord(timestamp=" + timestamp + ", accountId=" + accountId + ", counter=" + counter
+                + ", result=" + (isAccepted() ? "accepted" : "rejected") + ", drift=" + drift + ")";
+    }
+
+}
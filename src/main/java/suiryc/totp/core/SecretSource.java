@@ -0,0 +1,20 @@
+package suiryc.totp.core;
+
+/**
+ * Source of TOTP secret.
+ *
+ * Secret is only requested when needed: the caller owns the returned buffer
+ * and is expected to wipe it once done with it.
+ */
+@FunctionalInterface
+public interface SecretSource {
+
+    /** Gets (raw) secret. */
+    byte[] getSecret() throws Exception;
+
+    /** Gets source decoding a base32 secret. */
+    static SecretSource base32(String secret) {
+        return () -> Base32Decoder.decode(secret);
+    }
+
+}
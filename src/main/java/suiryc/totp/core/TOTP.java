@@ -1,8 +1,11 @@
 package suiryc.totp.core;
 
 import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
+import javax.crypto.SecretKey;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
 
 /**
  * TOTP handler.
@@ -23,16 +26,23 @@ public class TOTP {
     public static int TIME_INTERVAL = 30;
 
     private final String label;
-    private final byte[] secret;
+    private final SecretSource secret;
     private final String hashAlgorithm;
     private final int otpLength;
     private final TimeInterval timeInterval;
+    private Mac hasher;
     private String otp;
     private String nextOtp;
 
-    public TOTP(String label, String secret, String hashAlgorithm, int otpLength, TimeInterval timeInterval) throws Exception {
+    /**
+     * Creates TOTP with secret obtained on demand.
+     *
+     * The secret is only requested (and the OTP computed) upon first refresh
+     * or generation.
+     */
+    public TOTP(String label, SecretSource secret, String hashAlgorithm, int otpLength, TimeInterval timeInterval) {
         this.label = label;
-        this.secret = Base32Decoder.decode(secret);
+        this.secret = secret;
         if ("SHA1".equals(hashAlgorithm) || "SHA-1".equals(hashAlgorithm)) hashAlgorithm = "HMACSHA1";
         else if ("SHA256".equals(hashAlgorithm) || "SHA-256".equals(hashAlgorithm)) hashAlgorithm = "HMACSHA256";
         else if ("SHA512".equals(hashAlgorithm) || "SHA-512".equals(hashAlgorithm)) hashAlgorithm = "HMACSHA512";
@@ -45,6 +55,10 @@ public class TOTP {
         this.hashAlgorithm = hashAlgorithm;
         this.otpLength = otpLength;
         this.timeInterval = timeInterval;
+    }
+
+    public TOTP(String label, String secret, String hashAlgorithm, int otpLength, TimeInterval timeInterval) throws Exception {
+        this(label, SecretSource.base32(secret), hashAlgorithm, otpLength, timeInterval);
         refresh();
     }
 
@@ -62,6 +76,21 @@ public class TOTP {
         return timeInterval;
     }
 
+    /** Gets TOTP hash algorithm. */
+    public String getHashAlgorithm() {
+        return hashAlgorithm;
+    }
+
+    /** Gets TOTP code length. */
+    public int getOtpLength() {
+        return otpLength;
+    }
+
+    /** Gets TOTP secret source. */
+    SecretSource getSecret() {
+        return secret;
+    }
+
     /** Gets TOTP code. */
     public String getOtp() {
         return otp;
@@ -78,11 +107,15 @@ public class TOTP {
         this.nextOtp = generate(timeInterval.getValue() + 1);
     }
 
+    /** Sets TOTP codes (computed by batch). */
+    void refresh(String otp, String nextOtp) {
+        this.otp = otp;
+        this.nextOtp = nextOtp;
+    }
+
     /** Generates OTP for given counter. */
-    public String generate(long counter) throws Exception {
-        // MAC hasher initialized with secret key
-        Mac hasher = Mac.getInstance(hashAlgorithm);
-        hasher.init(new SecretKeySpec(secret, "RAW"));
+    public synchronized String generate(long counter) throws Exception {
+        Mac hasher = getHasher();
 
         // Hash (big-endian) counter.
         byte[] hash = hasher.doFinal(ByteBuffer.allocate(Long.BYTES).putLong(counter).array());
@@ -98,4 +131,84 @@ public class TOTP {
         return String.format("%0" + otpLength + "d", code);
     }
 
+    /**
+     * Verifies OTP code.
+     *
+     * Codes of neighbouring counters are accepted up to the given window, the
+     * nearest ones being checked first.
+     *
+     * @param code code to verify
+     * @param counter expected counter
+     * @param window how many counters drift is accepted (before and after),
+     *               at most 127
+     * @return drift of the matching code counter, or null if code is rejected
+     */
+    public Integer verify(String code, long counter, int window) throws Exception {
+        if ((window < 0) || (window > Byte.MAX_VALUE)) throw new IllegalArgumentException("Invalid verification window: " + window);
+        if ((code == null) || (code.length() != otpLength)) return null;
+        byte[] actual = code.getBytes(StandardCharsets.US_ASCII);
+        if (matches(actual, counter)) return 0;
+        for (int drift = 1; drift <= window; drift++) {
+            if (matches(actual, counter - drift)) return -drift;
+            if (matches(actual, counter + drift)) return drift;
+        }
+        return null;
+    }
+
+    private boolean matches(byte[] code, long counter) throws Exception {
+        // Compare in constant time: do not leak how many digits match.
+        return MessageDigest.isEqual(code, generate(counter).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private Mac getHasher() throws Exception {
+        if (hasher != null) return hasher;
+        // MAC hasher initialized with secret key.
+        // Notes:
+        // The hasher is kept (it is reset after each computation) so that the
+        // secret is only needed once. The key is not copied (as SecretKeySpec
+        // would do): the Mac gets a copy of it upon initialization (which the
+        // JDK HMAC implementation wipes once its keyed pads are computed), and
+        // we wipe our secret afterwards.
+        // Thus, the hasher keyed state (derived from the secret) remains.
+        byte[] key = secret.getSecret();
+        try {
+            // As SecretKeySpec, reject empty keys.
+            if (key.length == 0) throw new IllegalArgumentException("Empty key");
+            Mac mac = Mac.getInstance(hashAlgorithm);
+            mac.init(new RawKey(key));
+            hasher = mac;
+        } finally {
+            Arrays.fill(key, (byte)0);
+        }
+        return hasher;
+    }
+
+    /** Raw secret key, not copying the key bytes. */
+    private static class RawKey implements SecretKey {
+
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] key;
+
+        RawKey(byte[] key) {
+            this.key = key;
+        }
+
+        @Override
+        public String getAlgorithm() {
+            return "RAW";
+        }
+
+        @Override
+        public String getFormat() {
+            return "RAW";
+        }
+
+        @Override
+        public byte[] getEncoded() {
+            return key.clone();
+        }
+
+    }
+
 }
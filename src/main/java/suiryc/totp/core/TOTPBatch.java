@@ -0,0 +1,556 @@
+package suiryc.totp.core;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Batch TOTP generator.
+ *
+ * Generates codes of many accounts for the same counter, e.g. upon time
+ * interval change. Codes are the same as {@link TOTP#generate(long)}.
+ *
+ * HMAC-SHA1 and HMAC-SHA256 are computed for many accounts at once: hash
+ * state words are stored per word across accounts ('lanes'), so that each
+ * hash round is a simple loop over accounts that the JIT can vectorize.
+ * In addition:
+ *  - the hash states after processing the keyed inner/outer pads are computed
+ *    once, leaving two hash blocks per code
+ *  - the inner message (counter) is the same for all accounts: its schedule
+ *    is only computed once
+ * Other algorithms, and TOTPs whose secret could not be obtained (or is
+ * empty), fall back to each TOTP own generation: a failing TOTP does not
+ * prevent generating the codes of the others.
+ *
+ * Notes:
+ * Upon first generation, the secrets of all (SHA1/SHA256) TOTPs are requested
+ * at once (e.g. decrypted for vault accounts), and the keyed hash states are
+ * kept. This trades the on-demand secret handling of TOTP for throughput:
+ * only batch TOTPs whose codes are all needed anyway, as a time interval group
+ * refreshed together. TOTPs only refreshed through a batch do not build their
+ * own keyed state.
+ *
+ * Generation is synchronized: working arrays are shared.
+ */
+public class TOTPBatch {
+
+    // How many accounts are processed together. Keeps working arrays small
+    // enough to remain in CPU cache.
+    private static final int LANES = 256;
+
+    // Hash block size (bytes).
+    private static final int BLOCK_LENGTH = 64;
+    // Hash block size (words).
+    private static final int BLOCK_WORDS = BLOCK_LENGTH / Integer.BYTES;
+
+    private static final int IPAD = 0x36363636;
+    private static final int OPAD = 0x5c5c5c5c;
+
+    private final List<TOTP> totps;
+    private final List<Integer> sha1 = new ArrayList<>();
+    private final List<Integer> sha256 = new ArrayList<>();
+    private final List<Integer> fallback = new ArrayList<>();
+    // Built upon first generation.
+    private List<Lanes> lanes;
+
+    /**
+     * Creates batch generator.
+     *
+     * Secrets are only requested upon first generation.
+     *
+     * @param totps TOTPs to generate codes for
+     */
+    public TOTPBatch(List<TOTP> totps) {
+        this.totps = new ArrayList<>(totps);
+        for (int idx = 0; idx < this.totps.size(); idx++) {
+            switch (this.totps.get(idx).getHashAlgorithm().toUpperCase()) {
+                case "HMACSHA1":
+                    sha1.add(idx);
+                    break;
+                case "HMACSHA256":
+                    sha256.add(idx);
+                    break;
+                default:
+                    fallback.add(idx);
+            }
+        }
+    }
+
+    /** Gets number of TOTPs. */
+    public int size() {
+        return totps.size();
+    }
+
+    /**
+     * Generates OTPs for given counter.
+     *
+     * @return codes, in the same order than TOTPs
+     */
+    public synchronized String[] generate(long counter) throws Exception {
+        List<Exception> failures = new ArrayList<>();
+        String[] codes = generate(counter, failures);
+        checkFailures(failures);
+        return codes;
+    }
+
+    /**
+     * Refreshes TOTPs.
+     *
+     * Same as refreshing each TOTP, all TOTPs using the given counter.
+     * TOTPs failing to generate their codes are not refreshed, which does not
+     * prevent refreshing the others.
+     *
+     * @throws Exception if any TOTP failed
+     */
+    public synchronized void refresh(long counter) throws Exception {
+        List<Exception> failures = new ArrayList<>();
+        String[] otps = generate(counter, failures);
+        String[] nextOtps = generate(counter + 1, failures);
+        for (int idx = 0; idx < otps.length; idx++) {
+            if ((otps[idx] != null) && (nextOtps[idx] != null)) totps.get(idx).refresh(otps[idx], nextOtps[idx]);
+        }
+        checkFailures(failures);
+    }
+
+    private String[] generate(long counter, List<Exception> failures) throws Exception {
+        String[] codes = new String[totps.size()];
+        for (Lanes l : getLanes()) l.generate(counter, codes);
+        for (int idx : fallback) {
+            TOTP totp = totps.get(idx);
+            try {
+                codes[idx] = totp.generate(counter);
+            } catch (Exception ex) {
+                failures.add(new Exception("Failed to generate TOTP=<" + totp.getLabel() + "> code", ex));
+            }
+        }
+        return codes;
+    }
+
+    private void checkFailures(List<Exception> failures) throws Exception {
+        if (failures.isEmpty()) return;
+        Exception ex = failures.get(0);
+        failures.stream().skip(1).forEach(ex::addSuppressed);
+        throw ex;
+    }
+
+    private List<Lanes> getLanes() throws Exception {
+        if (lanes != null) return lanes;
+        List<Lanes> l = new ArrayList<>();
+        if (!sha1.isEmpty()) l.add(new Sha1Lanes(totps, sha1));
+        if (!sha256.isEmpty()) l.add(new Sha256Lanes(totps, sha256));
+        // TOTPs whose key could not be loaded are handled on their own.
+        for (Lanes lane : l) fallback.addAll(lane.failed);
+        lanes = l;
+        return lanes;
+    }
+
+    /** Left-pads with 0 the code, as TOTP does. */
+    static String format(int code, int otpLength) {
+        String s = Integer.toString(code);
+        if (s.length() >= otpLength) return s;
+        char[] chars = new char[otpLength];
+        int padding = otpLength - s.length();
+        Arrays.fill(chars, 0, padding, '0');
+        s.getChars(0, s.length(), chars, padding);
+        return new String(chars);
+    }
+
+    /**
+     * Accounts sharing a hash algorithm.
+     *
+     * State and message arrays are indexed by word then by lane (account).
+     */
+    private abstract static class Lanes {
+
+        // Number of hash state (and digest) words.
+        private final int words;
+        // TOTPs indexes.
+        private final int[] indexes;
+        private final int[] otpLengths;
+        private final int[] modulos;
+        // Lanes (and TOTPs indexes) whose key could not be loaded: ignored.
+        private final boolean[] skipped;
+        private final List<Integer> failed = new ArrayList<>();
+        // Hash states after inner/outer pads.
+        private final int[][] inner;
+        private final int[][] outer;
+        // Working arrays.
+        private final int[][] state;
+        private final int[][] message = new int[BLOCK_WORDS][LANES];
+
+        Lanes(int words, List<TOTP> totps, List<Integer> indexes) throws Exception {
+            this.words = words;
+            int size = indexes.size();
+            this.indexes = new int[size];
+            otpLengths = new int[size];
+            modulos = new int[size];
+            skipped = new boolean[size];
+            inner = new int[words][size];
+            outer = new int[words][size];
+            state = new int[words][LANES];
+
+            int[][] keys = new int[BLOCK_WORDS][LANES];
+            try {
+                for (int from = 0; from < size; from += LANES) {
+                    int len = Math.min(LANES, size - from);
+                    for (int lane = 0; lane < len; lane++) {
+                        int idx = indexes.get(from + lane);
+                        TOTP totp = totps.get(idx);
+                        this.indexes[from + lane] = idx;
+                        otpLengths[from + lane] = totp.getOtpLength();
+                        modulos[from + lane] = (int)Math.pow(10, totp.getOtpLength());
+                        try {
+                            loadKey(keys, lane, totp.getSecret().getSecret());
+                        } catch (Exception ex) {
+                            // Leave it to the TOTP (which will report the
+                            // failure on its own).
+                            for (int[] w : keys) w[lane] = 0;
+                            skipped[from + lane] = true;
+                            failed.add(idx);
+                        }
+                    }
+                    // Hash the keyed pads.
+                    keyedState(keys, IPAD, inner, from, len);
+                    keyedState(keys, OPAD, outer, from, len);
+                }
+            } finally {
+                for (int[] w : keys) Arrays.fill(w, 0);
+                for (int[] w : message) Arrays.fill(w, 0);
+                for (int[] w : state) Arrays.fill(w, 0);
+            }
+        }
+
+        /** Gets hash algorithm (for MessageDigest). */
+        protected abstract String digestAlgorithm();
+
+        /** Gets hash initial state. */
+        protected abstract int[] initialState();
+
+        /** Expands message schedule (common to all lanes). */
+        protected abstract int[] schedule(int[] block);
+
+        /**
+         * Processes one block.
+         *
+         * Either the schedule is common to all lanes, or the message block is
+         * given per lane (and expanded in place).
+         *
+         * @param state state words; upon return contains the new state words,
+         *              without the initial state added
+         * @param len number of lanes
+         * @param schedule common message schedule, or null
+         * @param message per-lane message block, or null
+         */
+        protected abstract void compress(int[][] state, int len, int[] schedule, int[][] message);
+
+        private void loadKey(int[][] keys, int lane, byte[] key) throws Exception {
+            try {
+                // As Mac, reject empty keys.
+                if (key.length == 0) throw new IllegalArgumentException("Empty key");
+                // Keys longer than a block are hashed first.
+                if (key.length > BLOCK_LENGTH) {
+                    byte[] hashed = MessageDigest.getInstance(digestAlgorithm()).digest(key);
+                    Arrays.fill(key, (byte)0);
+                    key = hashed;
+                }
+                // Zero-padded block, as big-endian words.
+                byte[] block = Arrays.copyOf(key, BLOCK_LENGTH);
+                ByteBuffer buffer = ByteBuffer.wrap(block);
+                for (int w = 0; w < BLOCK_WORDS; w++) keys[w][lane] = buffer.getInt();
+                Arrays.fill(block, (byte)0);
+            } finally {
+                Arrays.fill(key, (byte)0);
+            }
+        }
+
+        private void keyedState(int[][] keys, int pad, int[][] target, int from, int len) {
+            int[] iv = initialState();
+            for (int w = 0; w < BLOCK_WORDS; w++) {
+                int[] k = keys[w];
+                int[] m = message[w];
+                for (int lane = 0; lane < len; lane++) m[lane] = k[lane] ^ pad;
+            }
+            for (int w = 0; w < words; w++) Arrays.fill(state[w], 0, len, iv[w]);
+            compress(state, len, null, message);
+            for (int w = 0; w < words; w++) {
+                int[] s = state[w];
+                int[] t = target[w];
+                for (int lane = 0; lane < len; lane++) t[from + lane] = s[lane] + iv[w];
+            }
+        }
+
+        void generate(long counter, String[] codes) {
+            // Inner message: counter (big-endian), padding, and bits length
+            // (including the inner pad block).
+            int[] block = new int[BLOCK_WORDS];
+            block[0] = (int)(counter >>> 32);
+            block[1] = (int)counter;
+            block[2] = 0x80000000;
+            block[BLOCK_WORDS - 1] = (BLOCK_LENGTH + Long.BYTES) * 8;
+            int[] schedule = schedule(block);
+
+            int size = indexes.length;
+            for (int from = 0; from < size; from += LANES) {
+                int len = Math.min(LANES, size - from);
+
+                // Inner hash.
+                for (int w = 0; w < words; w++) System.arraycopy(inner[w], from, state[w], 0, len);
+                compress(state, len, schedule, null);
+                // Outer message: inner digest, padding, and bits length
+                // (including the outer pad block).
+                for (int w = 0; w < words; w++) {
+                    int[] s = state[w];
+                    int[] h = inner[w];
+                    int[] m = message[w];
+                    for (int lane = 0; lane < len; lane++) m[lane] = s[lane] + h[from + lane];
+                }
+                Arrays.fill(message[words], 0, len, 0x80000000);
+                for (int w = words + 1; w < BLOCK_WORDS - 1; w++) Arrays.fill(message[w], 0, len, 0);
+                Arrays.fill(message[BLOCK_WORDS - 1], 0, len, (BLOCK_LENGTH + words * Integer.BYTES) * 8);
+
+                // Outer hash.
+                for (int w = 0; w < words; w++) System.arraycopy(outer[w], from, state[w], 0, len);
+                compress(state, len, null, message);
+
+                for (int lane = 0; lane < len; lane++) {
+                    int hashLane = from + lane;
+                    if (skipped[hashLane]) continue;
+                    // Get last nibble as an offset value.
+                    int offset = (state[words - 1][lane] + outer[words - 1][hashLane]) & 0x0F;
+                    // Read integer (big-endian) at offset, and remove the most
+                    // significant bit (makes it positive).
+                    int wordIdx = offset / Integer.BYTES;
+                    int shift = (offset % Integer.BYTES) * 8;
+                    int code = state[wordIdx][lane] + outer[wordIdx][hashLane];
+                    if (shift != 0) {
+                        int next = state[wordIdx + 1][lane] + outer[wordIdx + 1][hashLane];
+                        code = (code << shift) | (next >>> (32 - shift));
+                    }
+                    code &= 0x7FFFFFFF;
+                    // Keep requested length.
+                    code %= modulos[hashLane];
+                    codes[indexes[hashLane]] = format(code, otpLengths[hashLane]);
+                }
+            }
+        }
+
+    }
+
+    /**
+     * HMAC-SHA1 lanes.
+     *
+     * See RFC 3174: https://tools.ietf.org/html/rfc3174
+     */
+    private static class Sha1Lanes extends Lanes {
+
+        private static final int[] IV = { 0x67452301, 0xEFCDAB89, 0x98BADCFE, 0x10325476, 0xC3D2E1F0 };
+        private static final int ROUNDS = 80;
+
+        Sha1Lanes(List<TOTP> totps, List<Integer> indexes) throws Exception {
+            super(IV.length, totps, indexes);
+        }
+
+        @Override
+        protected String digestAlgorithm() {
+            return "SHA-1";
+        }
+
+        @Override
+        protected int[] initialState() {
+            return IV;
+        }
+
+        @Override
+        protected int[] schedule(int[] block) {
+            int[] w = Arrays.copyOf(block, ROUNDS);
+            for (int t = BLOCK_WORDS; t < ROUNDS; t++) {
+                w[t] = Integer.rotateLeft(w[t - 3] ^ w[t - 8] ^ w[t - 14] ^ w[t - 16], 1);
+            }
+            return w;
+        }
+
+        @Override
+        protected void compress(int[][] state, int len, int[] schedule, int[][] message) {
+            // Notes:
+            // Instead of moving values between state words at each round, the
+            // words arrays are rotated: only two of them are actually updated.
+            // After 80 rounds (multiple of 5) words are back in place.
+            int[][] v = state.clone();
+            for (int t = 0; t < ROUNDS; t++) {
+                int[] a = v[0];
+                int[] b = v[1];
+                int[] c = v[2];
+                int[] d = v[3];
+                int[] e = v[4];
+                int round = t / 20;
+                int k = (round == 0) ? 0x5A827999 : (round == 1) ? 0x6ED9EBA1 : (round == 2) ? 0x8F1BBCDC : 0xCA62C1D6;
+                if (message == null) {
+                    int kw = k + schedule[t];
+                    if (round == 0) {
+                        for (int i = 0; i < len; i++) {
+                            e[i] += Integer.rotateLeft(a[i], 5) + ((b[i] & c[i]) | (~b[i] & d[i])) + kw;
+                            b[i] = Integer.rotateLeft(b[i], 30);
+                        }
+                    } else if (round == 2) {
+                        for (int i = 0; i < len; i++) {
+                            e[i] += Integer.rotateLeft(a[i], 5) + ((b[i] & c[i]) | (b[i] & d[i]) | (c[i] & d[i])) + kw;
+                            b[i] = Integer.rotateLeft(b[i], 30);
+                        }
+                    } else {
+                        for (int i = 0; i < len; i++) {
+                            e[i] += Integer.rotateLeft(a[i], 5) + (b[i] ^ c[i] ^ d[i]) + kw;
+                            b[i] = Integer.rotateLeft(b[i], 30);
+                        }
+                    }
+                } else {
+                    int[] w = message[t & 15];
+                    if (t >= BLOCK_WORDS) {
+                        int[] w3 = message[(t - 3) & 15];
+                        int[] w8 = message[(t - 8) & 15];
+                        int[] w14 = message[(t - 14) & 15];
+                        for (int i = 0; i < len; i++) w[i] = Integer.rotateLeft(w3[i] ^ w8[i] ^ w14[i] ^ w[i], 1);
+                    }
+                    if (round == 0) {
+                        for (int i = 0; i < len; i++) {
+                            e[i] += Integer.rotateLeft(a[i], 5) + ((b[i] & c[i]) | (~b[i] & d[i])) + k + w[i];
+                            b[i] = Integer.rotateLeft(b[i], 30);
+                        }
+                    } else if (round == 2) {
+                        for (int i = 0; i < len; i++) {
+                            e[i] += Integer.rotateLeft(a[i], 5) + ((b[i] & c[i]) | (b[i] & d[i]) | (c[i] & d[i])) + k + w[i];
+                            b[i] = Integer.rotateLeft(b[i], 30);
+                        }
+                    } else {
+                        for (int i = 0; i < len; i++) {
+                            e[i] += Integer.rotateLeft(a[i], 5) + (b[i] ^ c[i] ^ d[i]) + k + w[i];
+                            b[i] = Integer.rotateLeft(b[i], 30);
+                        }
+                    }
+                }
+                // New words: a=e, b=a, c=b (rotated), d=c, e=d.
+                v[4] = d;
+                v[3] = c;
+                v[2] = b;
+                v[1] = a;
+                v[0] = e;
+            }
+        }
+
+    }
+
+    /**
+     * HMAC-SHA256 lanes.
+     *
+     * See RFC 6234: https://tools.ietf.org/html/rfc6234
+     */
+    private static class Sha256Lanes extends Lanes {
+
+        private static final int[] IV = {
+                0x6A09E667, 0xBB67AE85, 0x3C6EF372, 0xA54FF53A, 0x510E527F, 0x9B05688C, 0x1F83D9AB, 0x5BE0CD19
+        };
+        private static final int[] K = {
+                0x428A2F98, 0x71374491, 0xB5C0FBCF, 0xE9B5DBA5, 0x3956C25B, 0x59F111F1, 0x923F82A4, 0xAB1C5ED5,
+                0xD807AA98, 0x12835B01, 0x243185BE, 0x550C7DC3, 0x72BE5D74, 0x80DEB1FE, 0x9BDC06A7, 0xC19BF174,
+                0xE49B69C1, 0xEFBE4786, 0x0FC19DC6, 0x240CA1CC, 0x2DE92C6F, 0x4A7484AA, 0x5CB0A9DC, 0x76F988DA,
+                0x983E5152, 0xA831C66D, 0xB00327C8, 0xBF597FC7, 0xC6E00BF3, 0xD5A79147, 0x06CA6351, 0x14292967,
+                0x27B70A85, 0x2E1B2138, 0x4D2C6DFC, 0x53380D13, 0x650A7354, 0x766A0ABB, 0x81C2C92E, 0x92722C85,
+                0xA2BFE8A1, 0xA81A664B, 0xC24B8B70, 0xC76C51A3, 0xD192E819, 0xD6990624, 0xF40E3585, 0x106AA070,
+                0x19A4C116, 0x1E376C08, 0x2748774C, 0x34B0BCB5, 0x391C0CB3, 0x4ED8AA4A, 0x5B9CCA4F, 0x682E6FF3,
+                0x748F82EE, 0x78A5636F, 0x84C87814, 0x8CC70208, 0x90BEFFFA, 0xA4506CEB, 0xBEF9A3F7, 0xC67178F2
+        };
+        private static final int ROUNDS = 64;
+
+        Sha256Lanes(List<TOTP> totps, List<Integer> indexes) throws Exception {
+            super(IV.length, totps, indexes);
+        }
+
+        @Override
+        protected String digestAlgorithm() {
+            return "SHA-256";
+        }
+
+        @Override
+        protected int[] initialState() {
+            return IV;
+        }
+
+        @Override
+        protected int[] schedule(int[] block) {
+            int[] w = Arrays.copyOf(block, ROUNDS);
+            for (int t = BLOCK_WORDS; t < ROUNDS; t++) {
+                w[t] = sigma1(w[t - 2]) + w[t - 7] + sigma0(w[t - 15]) + w[t - 16];
+            }
+            return w;
+        }
+
+        @Override
+        protected void compress(int[][] state, int len, int[] schedule, int[][] message) {
+            // Notes:
+            // Instead of moving values between state words at each round, the
+            // words arrays are rotated: only two of them are actually updated.
+            // After 64 rounds (multiple of 8) words are back in place.
+            int[][] v = state.clone();
+            for (int t = 0; t < ROUNDS; t++) {
+                int[] a = v[0];
+                int[] b = v[1];
+                int[] c = v[2];
+                int[] d = v[3];
+                int[] e = v[4];
+                int[] f = v[5];
+                int[] g = v[6];
+                int[] h = v[7];
+                if (message == null) {
+                    int kw = K[t] + schedule[t];
+                    for (int i = 0; i < len; i++) {
+                        int t1 = h[i] + bigSigma1(e[i]) + ((e[i] & f[i]) ^ (~e[i] & g[i])) + kw;
+                        d[i] += t1;
+                        h[i] = t1 + bigSigma0(a[i]) + ((a[i] & b[i]) ^ (a[i] & c[i]) ^ (b[i] & c[i]));
+                    }
+                } else {
+                    int[] w = message[t & 15];
+                    if (t >= BLOCK_WORDS) {
+                        int[] w2 = message[(t - 2) & 15];
+                        int[] w7 = message[(t - 7) & 15];
+                        int[] w15 = message[(t - 15) & 15];
+                        for (int i = 0; i < len; i++) w[i] += sigma1(w2[i]) + w7[i] + sigma0(w15[i]);
+                    }
+                    int k = K[t];
+                    for (int i = 0; i < len; i++) {
+                        int t1 = h[i] + bigSigma1(e[i]) + ((e[i] & f[i]) ^ (~e[i] & g[i])) + k + w[i];
+                        d[i] += t1;
+                        h[i] = t1 + bigSigma0(a[i]) + ((a[i] & b[i]) ^ (a[i] & c[i]) ^ (b[i] & c[i]));
+                    }
+                }
+                // New words: a=h, b=a, c=b, d=c, e=d, f=e, g=f, h=g.
+                v[7] = g;
+                v[6] = f;
+                v[5] = e;
+                v[4] = d;
+                v[3] = c;
+                v[2] = b;
+                v[1] = a;
+                v[0] = h;
+            }
+        }
+
+        private static int bigSigma0(int x) {
+            return Integer.rotateRight(x, 2) ^ Integer.rotateRight(x, 13) ^ Integer.rotateRight(x, 22);
+        }
+
+        private static int bigSigma1(int x) {
+            return Integer.rotateRight(x, 6) ^ Integer.rotateRight(x, 11) ^ Integer.rotateRight(x, 25);
+        }
+
+        private static int sigma0(int x) {
+            return Integer.rotateRight(x, 7) ^ Integer.rotateRight(x, 18) ^ (x >>> 3);
+        }
+
+        private static int sigma1(int x) {
+            return Integer.rotateRight(x, 17) ^ Integer.rotateRight(x, 19) ^ (x >>> 10);
+        }
+
+    }
+
+}
@@ -0,0 +1,364 @@
+package suiryc.totp.core;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Encrypted accounts vault.
+ *
+ * A single key derivation (PBKDF2) is done when unlocking the vault; each
+ * account secret is then encrypted separately (AES-GCM) and only decrypted
+ * when needed.
+ *
+ * File layout (big-endian):
+ * <pre>
+ *   header: magic, version, KDF iterations, salt, check nonce, check tag,
+ *           accounts count
+ *   index:  for each account, record offset (long) and length (int)
+ *   records: label, hash algorithm, OTP length, time interval, secret nonce,
+ *            encrypted secret
+ * </pre>
+ * Only the header is read upon opening; index entries and records are read
+ * when an account is accessed.
+ */
+public class Vault implements Closeable {
+
+    // Default KDF iterations.
+    public static final int KDF_ITERATIONS = 200_000;
+    // Accepted KDF iterations: prevents a corrupted header from hanging the
+    // unlocking.
+    private static final int KDF_ITERATIONS_MAX = 10_000_000;
+
+    private static final byte[] MAGIC = "GAUTHVLT".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+
+    private static final String KDF_ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final String CIPHER_ALGORITHM = "AES/GCM/NoPadding";
+    private static final int KEY_BITS = 256;
+    private static final int SALT_LENGTH = 16;
+    private static final int NONCE_LENGTH = 12;
+    private static final int TAG_BITS = 128;
+    private static final int TAG_LENGTH = TAG_BITS / 8;
+
+    // Header fields up to (excluding) the check nonce: authenticated by the
+    // check tag.
+    private static final int HEADER_PREFIX_LENGTH = MAGIC.length + Integer.BYTES * 2 + SALT_LENGTH;
+    private static final int HEADER_LENGTH = HEADER_PREFIX_LENGTH + NONCE_LENGTH + TAG_LENGTH + Integer.BYTES;
+    private static final int INDEX_ENTRY_LENGTH = Long.BYTES + Integer.BYTES;
+
+    private final FileChannel channel;
+    private final SecretKeySpec key;
+    private final int size;
+
+    private Vault(FileChannel channel, SecretKeySpec key, int size) {
+        this.channel = channel;
+        this.key = key;
+        this.size = size;
+    }
+
+    /**
+     * Opens (unlocks) vault.
+     *
+     * @param path vault file
+     * @param password vault password
+     * @return unlocked vault
+     * @throws Exception if the vault could not be read, or password is wrong
+     */
+    public static Vault open(Path path, char[] password) throws Exception {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            ByteBuffer header = read(channel, 0, HEADER_LENGTH);
+            byte[] magic = new byte[MAGIC.length];
+            header.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) throw new Exception("Invalid vault file: " + path);
+            int version = header.getInt();
+            if (version != VERSION) throw new Exception("Unhandled vault version: " + version);
+            int iterations = header.getInt();
+            byte[] salt = new byte[SALT_LENGTH];
+            header.get(salt);
+            byte[] checkNonce = new byte[NONCE_LENGTH];
+            header.get(checkNonce);
+            byte[] checkTag = new byte[TAG_LENGTH];
+            header.get(checkTag);
+            int size = header.getInt();
+            if ((iterations < 1) || (iterations > KDF_ITERATIONS_MAX)) {
+                throw new Exception("Invalid vault KDF iterations: " + iterations);
+            }
+            if ((size < 0) || (HEADER_LENGTH + (long)size * INDEX_ENTRY_LENGTH > channel.size())) {
+                throw new Exception("Invalid vault accounts count: " + size);
+            }
+
+            SecretKeySpec key = deriveKey(password, salt, iterations);
+            // Check password (and header integrity): the tag must match.
+            try {
+                Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+                cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, checkNonce));
+                cipher.updateAAD(header.array(), 0, HEADER_PREFIX_LENGTH);
+                cipher.updateAAD(header.array(), HEADER_LENGTH - Integer.BYTES, Integer.BYTES);
+                cipher.doFinal(checkTag);
+            } catch (Exception ex) {
+                throw new Exception("Invalid vault password", ex);
+            }
+            return new Vault(channel, key, size);
+        } catch (Exception ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Writes vault.
+     *
+     * Any existing file is replaced: vault is written in a temporary file
+     * (in the same directory) which is then moved atomically over the target.
+     * Upon failure, the existing file is left untouched.
+     *
+     * @param path vault file
+     * @param password vault password
+     * @param iterations KDF iterations
+     * @param accounts accounts to store
+     */
+    public static void write(Path path, char[] password, int iterations, List<Account> accounts) throws Exception {
+        if ((iterations < 1) || (iterations > KDF_ITERATIONS_MAX)) {
+            throw new IllegalArgumentException("Invalid vault KDF iterations: " + iterations);
+        }
+        SecureRandom random = new SecureRandom();
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        SecretKeySpec key = deriveKey(password, salt, iterations);
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.put(MAGIC).putInt(VERSION).putInt(iterations).put(salt);
+        byte[] checkNonce = new byte[NONCE_LENGTH];
+        random.nextBytes(checkNonce);
+        Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, checkNonce));
+        cipher.updateAAD(header.array(), 0, HEADER_PREFIX_LENGTH);
+        cipher.updateAAD(ByteBuffer.allocate(Integer.BYTES).putInt(accounts.size()).array());
+        header.put(checkNonce).put(cipher.doFinal()).putInt(accounts.size());
+        header.flip();
+
+        Path target = path.toAbsolutePath();
+        Path tmp = Files.createTempFile(target.getParent(), target.getFileName().toString() + ".", ".tmp");
+        boolean done = false;
+        try {
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                writeRecords(channel, header, key, random, accounts);
+                channel.force(true);
+            }
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            done = true;
+        } finally {
+            if (!done) Files.deleteIfExists(tmp);
+        }
+    }
+
+    /** Writes vault with default KDF iterations. */
+    public static void write(Path path, char[] password, List<Account> accounts) throws Exception {
+        write(path, password, KDF_ITERATIONS, accounts);
+    }
+
+    /** Gets number of accounts. */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets account.
+     *
+     * Only the account record is read: its secret is decrypted when requested.
+     *
+     * @param idx account index
+     * @return account
+     */
+    public Account get(int idx) throws Exception {
+        if ((idx < 0) || (idx >= size)) throw new IndexOutOfBoundsException("Invalid account index: " + idx);
+        ByteBuffer entry = read(channel, HEADER_LENGTH + (long)idx * INDEX_ENTRY_LENGTH, INDEX_ENTRY_LENGTH);
+        long offset = entry.getLong();
+        int length = entry.getInt();
+        long indexEnd = HEADER_LENGTH + (long)size * INDEX_ENTRY_LENGTH;
+        if ((offset < indexEnd) || (length <= 0) || (offset + length > channel.size())) {
+            throw new IOException("Invalid vault record: index=" + idx + " offset=" + offset + " length=" + length);
+        }
+        byte[] record = read(channel, offset, length).array();
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(record));
+        String label = input.readUTF();
+        String hashAlgorithm = input.readUTF();
+        int otpLength = input.readInt();
+        int interval = input.readInt();
+        // Metadata (everything before the nonce) is authenticated along the
+        // secret.
+        int metadataLength = record.length - input.available();
+        byte[] nonce = new byte[NONCE_LENGTH];
+        input.readFully(nonce);
+        int encryptedLength = input.readInt();
+        if ((encryptedLength < TAG_LENGTH) || (encryptedLength > input.available())) {
+            throw new IOException("Invalid vault record: index=" + idx + " secret length=" + encryptedLength);
+        }
+        byte[] encrypted = new byte[encryptedLength];
+        input.readFully(encrypted);
+        return new Account(label, hashAlgorithm, otpLength, interval, () -> {
+            Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, nonce));
+            cipher.updateAAD(recordAAD(idx, record, metadataLength));
+            return cipher.doFinal(encrypted);
+        });
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private static SecretKeySpec deriveKey(char[] password, byte[] salt, int iterations) throws Exception {
+        PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, KEY_BITS);
+        byte[] raw = null;
+        try {
+            raw = SecretKeyFactory.getInstance(KDF_ALGORITHM).generateSecret(spec).getEncoded();
+            return new SecretKeySpec(raw, "AES");
+        } finally {
+            spec.clearPassword();
+            if (raw != null) Arrays.fill(raw, (byte)0);
+        }
+    }
+
+    private static void writeRecords(FileChannel channel, ByteBuffer header, SecretKeySpec key, SecureRandom random,
+                                     List<Account> accounts) throws Exception {
+        writeFully(channel, header);
+        ByteBuffer index = ByteBuffer.allocate(INDEX_ENTRY_LENGTH * accounts.size());
+        long offset = HEADER_LENGTH + (long)index.capacity();
+        channel.position(offset);
+        int idx = 0;
+        for (Account account : accounts) {
+            byte[] record = encodeRecord(key, random, idx, account);
+            index.putLong(offset).putInt(record.length);
+            writeFully(channel, ByteBuffer.wrap(record));
+            offset += record.length;
+            idx++;
+        }
+        index.flip();
+        channel.position(HEADER_LENGTH);
+        writeFully(channel, index);
+    }
+
+    private static byte[] encodeRecord(SecretKeySpec key, SecureRandom random, int idx, Account account) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        output.writeUTF(account.getLabel());
+        output.writeUTF(account.getHashAlgorithm());
+        output.writeInt(account.getOtpLength());
+        output.writeInt(account.getInterval());
+        output.flush();
+        byte[] metadata = bytes.toByteArray();
+
+        byte[] nonce = new byte[NONCE_LENGTH];
+        random.nextBytes(nonce);
+        Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, nonce));
+        cipher.updateAAD(recordAAD(idx, metadata, metadata.length));
+        byte[] secret = account.getSecret().getSecret();
+        byte[] encrypted;
+        try {
+            encrypted = cipher.doFinal(secret);
+        } finally {
+            Arrays.fill(secret, (byte)0);
+        }
+
+        output.write(nonce);
+        output.writeInt(encrypted.length);
+        output.write(encrypted);
+        output.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Gets record secret AAD.
+     *
+     * Binds the secret to its account position and metadata (label, hash
+     * algorithm, OTP length and time interval).
+     */
+    private static byte[] recordAAD(int idx, byte[] record, int metadataLength) {
+        return ByteBuffer.allocate(Integer.BYTES + metadataLength)
+                .putInt(idx)
+                .put(record, 0, metadataLength)
+                .array();
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) throw new IOException("Truncated vault file");
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) channel.write(buffer);
+    }
+
+    /** Vault account. */
+    public static class Account {
+
+        private final String label;
+        private final String hashAlgorithm;
+        private final int otpLength;
+        private final int interval;
+        private final SecretSource secret;
+
+        public Account(String label, String hashAlgorithm, int otpLength, int interval, SecretSource secret) {
+            this.label = label;
+            this.hashAlgorithm = hashAlgorithm;
+            this.otpLength = otpLength;
+            this.interval = interval;
+            this.secret = secret;
+        }
+
+        /** Gets account label. */
+        public String getLabel() {
+            return label;
+        }
+
+        /** Gets account OTP hash algorithm. */
+        public String getHashAlgorithm() {
+            return hashAlgorithm;
+        }
+
+        /** Gets account OTP length. */
+        public int getOtpLength() {
+            return otpLength;
+        }
+
+        /** Gets account OTP time interval (seconds). */
+        public int getInterval() {
+            return interval;
+        }
+
+        /** Gets account secret source. */
+        public SecretSource getSecret() {
+            return secret;
+        }
+
+    }
+
+}
@@ -0,0 +1,72 @@
+package suiryc.totp.audit;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * Audit log benchmark.
+ *
+ * Producer threads record events as fast as possible (retrying when the
+ * queue is full) for the given duration, measuring the sustained events rate
+ * written by the audit log, and the time spent by producers recording.
+ *
+ * Usage: AuditLogBenchmark [producer threads] [duration (s)]
+ */
+public class AuditLogBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int threads = (args.length > 0) ? Integer.parseInt(args[0]) : 4;
+        long duration = ((args.length > 1) ? Long.parseLong(args[1]) : 5) * 1_000_000_000L;
+
+        Path directory = Files.createTempDirectory("audit-benchmark");
+        try {
+            LongAdder recorded = new LongAdder();
+            LongAdder full = new LongAdder();
+            LongAdder recordNanos = new LongAdder();
+            long start;
+            try (AuditLog log = new AuditLog(directory)) {
+                List<Thread> producers = new ArrayList<>();
+                start = System.nanoTime();
+                long end = start + duration;
+                for (int t = 0; t < threads; t++) {
+                    int accountId = t;
+                    Thread producer = new Thread(() -> {
+                        long count = 0;
+                        long nanos = 0;
+                        long rejected = 0;
+                        while (System.nanoTime() < end) {
+                            long recordStart = System.nanoTime();
+                            boolean queued = log.record(accountId, count, true, 0);
+                            nanos += System.nanoTime() - recordStart;
+                            if (queued) count++;
+                            else rejected++;
+                        }
+                        recorded.add(count);
+                        full.add(rejected);
+                        recordNanos.add(nanos);
+                    });
+                    producers.add(producer);
+                    producer.start();
+                }
+                for (Thread producer : producers) producer.join();
+            }
+            // Closing waits for all records to be written.
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            long attempts = recorded.sum() + full.sum();
+            System.out.printf("Producers: %d; Records written: %d; Queue full: %d%n", threads, recorded.sum(), full.sum());
+            System.out.printf("Sustained rate: %.0f events/s%n", recorded.sum() / elapsed);
+            System.out.printf("Mean record call: %.1fns%n", (double)recordNanos.sum() / attempts);
+            System.out.printf("Segments: %d%n", AuditLog.listSegments(directory).size());
+        } finally {
+            try (Stream<Path> paths = Files.walk(directory)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+}
@@ -0,0 +1,125 @@
+package suiryc.totp.audit;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+import suiryc.totp.core.TOTP;
+
+public class AuditLogTest {
+
+    @Test
+    public void concurrentRecords() throws Exception {
+        int threads = 4;
+        int records = 10_000;
+        Path directory = Files.createTempDirectory("audit");
+        try {
+            // Small segments to exercise rotation.
+            try (AuditLog log = new AuditLog(directory, 4096, 1024)) {
+                List<Thread> producers = new ArrayList<>();
+                for (int t = 0; t < threads; t++) {
+                    int accountId = t;
+                    Thread producer = new Thread(() -> {
+                        for (int counter = 0; counter < records; counter++) {
+                            // Retry when queue is full: we want all records here.
+                            while (!log.record(accountId, counter, (counter % 2) == 0, counter % 3 - 1)) Thread.yield();
+                        }
+                    });
+                    producers.add(producer);
+                    producer.start();
+                }
+                for (Thread producer : producers) producer.join();
+            }
+            assertTrue(AuditLog.listSegments(directory).size() > 1);
+
+            // Records of each account must be read in order.
+            long[] nextCounters = new long[threads];
+            AuditReader.forEach(directory, record -> {
+                int accountId = record.getAccountId();
+                long counter = record.getCounter();
+                assertEquals(nextCounters[accountId]++, counter);
+                assertEquals((counter % 2) == 0, record.isAccepted());
+                assertEquals(counter % 3 - 1, record.getDrift());
+            });
+            for (long nextCounter : nextCounters) assertEquals(records, nextCounter);
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void verification() throws Exception {
+        Path directory = Files.createTempDirectory("audit");
+        try {
+            // base32("12345678901234567890")
+            TOTP totp = new TOTP("SHA1", "GEZDGNBVGY3TQOJQGEZDGNBVGY3TQOJQ");
+            try (AuditLog log = new AuditLog(directory)) {
+                assertTrue(log.verify(totp, 7, totp.generate(totp.getTimeInterval().getValue() + 1), 1));
+                assertFalse(log.verify(totp, 8, "invalid", 1));
+            }
+            // Reopening keeps existing segment.
+            try (AuditLog log = new AuditLog(directory)) {
+                assertEquals(2, AuditLog.listSegments(directory).size());
+                // Drift is recorded as a byte.
+                try {
+                    log.record(7, 0, true, Byte.MAX_VALUE + 1);
+                    fail("Drift above 127 accepted");
+                } catch (IllegalArgumentException ex) {
+                    // Expected.
+                }
+            }
+
+            List<AuditRecord> records = new ArrayList<>();
+            AuditReader.forEach(directory, records::add);
+            assertEquals(2, records.size());
+            assertEquals(7, records.get(0).getAccountId());
+            assertTrue(records.get(0).isAccepted());
+            assertEquals(8, records.get(1).getAccountId());
+            assertFalse(records.get(1).isAccepted());
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void writerFailure() throws Exception {
+        Path directory = Files.createTempDirectory("audit");
+        try {
+            // Segments hold 2 records.
+            AuditLog log = new AuditLog(directory, AuditLog.HEADER_LENGTH + 2 * AuditRecord.LENGTH, 16);
+            // Remove directory: creating the next segment fails.
+            delete(directory);
+            long deadline = System.currentTimeMillis() + 10_000;
+            int counter = 0;
+            while (log.record(0, counter++, true, 0)) {
+                assertTrue("Writer failure not detected", System.currentTimeMillis() < deadline);
+                Thread.sleep(1);
+            }
+            assertTrue(log.getDropped() > 0);
+            try {
+                log.close();
+                fail("Writer failure not reported");
+            } catch (IOException ex) {
+                // Expected.
+            }
+        } finally {
+            delete(directory);
+        }
+    }
+
+    private void delete(Path directory) throws IOException {
+        if (!Files.exists(directory)) return;
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+}
@@ -0,0 +1,69 @@
+package suiryc.totp.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Batch TOTP generation benchmark.
+ *
+ * Compares a time interval group refresh (codes of all accounts for the same
+ * counter) using each TOTP own Mac against the batch generator.
+ *
+ * Usage: TOTPBatchBenchmark [accounts count] [hash algorithm] [warm-up runs] [runs]
+ */
+public class TOTPBatchBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int count = (args.length > 0) ? Integer.parseInt(args[0]) : 1_000_000;
+        String hashAlgorithm = (args.length > 1) ? args[1] : TOTP.HASH_ALGORITHM;
+        int warmups = (args.length > 2) ? Integer.parseInt(args[2]) : 5;
+        int runs = (args.length > 3) ? Integer.parseInt(args[3]) : 10;
+
+        Random random = new Random(0);
+        TimeInterval timeInterval = new TimeInterval(TOTP.TIME_INTERVAL);
+        List<TOTP> totps = new ArrayList<>(count);
+        for (int idx = 0; idx < count; idx++) {
+            byte[] secret = new byte[20];
+            random.nextBytes(secret);
+            totps.add(new TOTP("account-" + idx, secret::clone, hashAlgorithm, TOTP.OTP_LENGTH, timeInterval));
+        }
+        TOTPBatch batch = new TOTPBatch(totps);
+        System.out.printf("Accounts: %d; Algorithm: %s; Warm-up runs: %d; Measured runs: %d%n",
+                count, hashAlgorithm, warmups, runs);
+
+        // Both paths are measured the same way: the first generation builds
+        // the keyed states (reported separately), then warm-up runs are done
+        // before measured runs.
+        long[] counter = { timeInterval.getValue() };
+        measure("Mac", count, warmups, runs, () -> {
+            long c = counter[0]++;
+            for (TOTP totp : totps) totp.generate(c);
+        });
+        measure("Batch", count, warmups, runs, () -> batch.generate(counter[0]++));
+    }
+
+    private static void measure(String name, int count, int warmups, int runs, Task task) throws Exception {
+        long start = System.nanoTime();
+        task.run();
+        System.out.printf("%-5s setup (first generation): %.1fms%n", name, (System.nanoTime() - start) / 1e6);
+        for (int run = 0; run < warmups; run++) task.run();
+        long[] nanos = new long[runs];
+        for (int run = 0; run < runs; run++) {
+            start = System.nanoTime();
+            task.run();
+            nanos[run] = System.nanoTime() - start;
+        }
+        Arrays.sort(nanos);
+        long median = nanos[runs / 2];
+        System.out.printf("%-5s median: %.1fms (%.0f codes/s); min: %.1fms; max: %.1fms%n", name,
+                median / 1e6, count / (median / 1e9), nanos[0] / 1e6, nanos[runs - 1] / 1e6);
+    }
+
+    @FunctionalInterface
+    private interface Task {
+        void run() throws Exception;
+    }
+
+}
@@ -0,0 +1,106 @@
+package suiryc.totp.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+public class TOTPBatchTest {
+
+    @Test
+    public void generator() throws Exception {
+        // base32("12345678901234567890")
+        String secret = "GEZDGNBVGY3TQOJQGEZDGNBVGY3TQOJQ";
+        // base32("12345678901234567890123456789012")
+        String secret256 = "GEZDGNBVGY3TQOJQGEZDGNBVGY3TQOJQGEZDGNBVGY3TQOJQGEZA====";
+        // base32("1234567890123456789012345678901234567890123456789012345678901234")
+        String secret512 = "GEZDGNBVGY3TQOJQGEZDGNBVGY3TQOJQGEZDGNBVGY3TQOJQGEZDGNBVGY3TQOJQGEZDGNBVGY3TQOJQGEZDGNBVGY3TQOJQGEZDGNA=";
+
+        // See https://tools.ietf.org/html/rfc6238#appendix-B
+        TimeInterval timeInterval = new TimeInterval(30);
+        TOTPBatch batch = new TOTPBatch(Arrays.asList(
+                new TOTP("SHA1", secret, "HMACSHA1", 8, timeInterval),
+                new TOTP("SHA256", secret256, "HMACSHA256", 8, timeInterval),
+                new TOTP("SHA512", secret512, "HMACSHA512", 8, timeInterval),
+                new TOTP("SHA1-6", secret)
+        ));
+        assertEquals(Arrays.asList("94287082", "46119246", "90693936", "287082"), Arrays.asList(batch.generate(1)));
+        assertEquals(Arrays.asList("07081804", "68084774", "25091201", "081804"), Arrays.asList(batch.generate(37037036)));
+        assertEquals(Arrays.asList("65353130", "77737706", "47863826", "353130"), Arrays.asList(batch.generate(666666666)));
+    }
+
+    @Test
+    public void sameAsTOTP() throws Exception {
+        // More accounts than processed together, with various key and code
+        // lengths (including keys longer than a hash block).
+        Random random = new Random(0);
+        TimeInterval timeInterval = new TimeInterval(30);
+        List<TOTP> totps = new ArrayList<>();
+        for (int idx = 0; idx < 1000; idx++) {
+            byte[] secret = new byte[1 + random.nextInt(100)];
+            random.nextBytes(secret);
+            String hashAlgorithm = (idx % 3 == 0) ? "HMACSHA256" : "HMACSHA1";
+            totps.add(new TOTP("account-" + idx, secret::clone, hashAlgorithm, 6 + random.nextInt(4), timeInterval));
+        }
+        TOTPBatch batch = new TOTPBatch(totps);
+        batch.refresh(timeInterval.getValue());
+        for (TOTP totp : totps) {
+            assertEquals(totp.generate(timeInterval.getValue()), totp.getOtp());
+            assertEquals(totp.generate(timeInterval.getValue() + 1), totp.getNextOtp());
+        }
+        for (long counter : new long[] { 0, 1, 59, 0x1234567890L, random.nextLong() }) {
+            String[] codes = batch.generate(counter);
+            for (int idx = 0; idx < totps.size(); idx++) {
+                assertEquals(totps.get(idx).generate(counter), codes[idx]);
+            }
+        }
+    }
+
+    @Test
+    public void failingSecrets() throws Exception {
+        // base32("12345678901234567890")
+        String secret = "GEZDGNBVGY3TQOJQGEZDGNBVGY3TQOJQ";
+        TimeInterval timeInterval = new TimeInterval(30);
+        AtomicInteger requests = new AtomicInteger();
+        SecretSource good = () -> {
+            requests.incrementAndGet();
+            return Base32Decoder.decode(secret);
+        };
+        List<TOTP> totps = Arrays.asList(
+                new TOTP("failing", () -> { throw new Exception("Tampered"); }, "HMACSHA1", 6, timeInterval),
+                new TOTP("good", good, "HMACSHA1", 6, timeInterval),
+                new TOTP("empty", () -> new byte[0], "HMACSHA256", 6, timeInterval)
+        );
+        TOTPBatch batch = new TOTPBatch(totps);
+
+        for (int run = 0; run < 2; run++) {
+            try {
+                batch.refresh(1);
+                fail("Failing TOTPs not reported");
+            } catch (Exception ex) {
+                // Both failing TOTPs, for current and next codes.
+                assertEquals(3, ex.getSuppressed().length);
+            }
+            // Other TOTPs are refreshed, with secret only requested once.
+            assertEquals("287082", totps.get(1).getOtp());
+            assertEquals("359152", totps.get(1).getNextOtp());
+            assertEquals(1, requests.get());
+            assertNull(totps.get(0).getOtp());
+            assertNull(totps.get(2).getOtp());
+        }
+
+        // Empty key is rejected, as TOTP does.
+        try {
+            batch.generate(1);
+            fail("Empty key accepted");
+        } catch (Exception ex) {
+            // Expected.
+        }
+    }
+
+}
@@ -3,6 +3,8 @@ package suiryc.totp.core;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
 
 public class TOTPTest {
 
@@ -58,4 +60,41 @@ public class TOTPTest {
         assertEquals("47863826", totp.generate(666666666));
     }
 
+    @Test
+    public void verifier() throws Exception {
+        // base32("12345678901234567890")
+        TOTP totp = new TOTP("SHA1", "GEZDGNBVGY3TQOJQGEZDGNBVGY3TQOJQ");
+        // See https://tools.ietf.org/html/rfc4226#page-32
+        assertEquals(Integer.valueOf(0), totp.verify("969429", 3, 1));
+        assertEquals(Integer.valueOf(-1), totp.verify("359152", 3, 1));
+        assertEquals(Integer.valueOf(1), totp.verify("338314", 3, 1));
+        assertEquals(Integer.valueOf(2), totp.verify("254676", 3, 2));
+        assertNull(totp.verify("254676", 3, 1));
+        assertNull(totp.verify("000000", 3, 2));
+        assertNull(totp.verify("96942", 3, 1));
+        try {
+            totp.verify("969429", 3, Byte.MAX_VALUE + 1);
+            fail("Verification window above 127 accepted");
+        } catch (IllegalArgumentException ex) {
+            // Expected.
+        }
+        try {
+            totp.verify("969429", 3, -1);
+            fail("Negative verification window accepted");
+        } catch (IllegalArgumentException ex) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void emptyKey() throws Exception {
+        TOTP totp = new TOTP("empty", () -> new byte[0], TOTP.HASH_ALGORITHM, TOTP.OTP_LENGTH, new TimeInterval(30));
+        try {
+            totp.generate(0);
+            fail("Empty key accepted");
+        } catch (IllegalArgumentException ex) {
+            assertEquals("Empty key", ex.getMessage());
+        }
+    }
+
 }
@@ -0,0 +1,79 @@
+package suiryc.totp.core;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Vault benchmark.
+ *
+ * Measures unlock time and per-account first-code latency (record reading,
+ * secret decryption, MAC initialization and code generation) on a vault with
+ * many accounts.
+ *
+ * Usage: VaultBenchmark [accounts count] [sampled accounts]
+ */
+public class VaultBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int count = (args.length > 0) ? Integer.parseInt(args[0]) : 100_000;
+        int samples = (args.length > 1) ? Integer.parseInt(args[1]) : 10_000;
+        char[] password = "benchmark".toCharArray();
+
+        SecureRandom random = new SecureRandom();
+        List<Vault.Account> accounts = new ArrayList<>(count);
+        for (int idx = 0; idx < count; idx++) {
+            byte[] secret = new byte[20];
+            random.nextBytes(secret);
+            accounts.add(new Vault.Account("account-" + idx, TOTP.HASH_ALGORITHM, TOTP.OTP_LENGTH, TOTP.TIME_INTERVAL, secret::clone));
+        }
+
+        Path path = Files.createTempFile("vault-benchmark", ".bin");
+        try {
+            long start = System.nanoTime();
+            Vault.write(path, password, accounts);
+            System.out.printf("Vault written: accounts=%d size=%dB duration=%.1fms%n",
+                    count, Files.size(path), (System.nanoTime() - start) / 1e6);
+
+            // Unlock a few times: the first run includes JIT and class loading.
+            for (int run = 0; run < 3; run++) {
+                start = System.nanoTime();
+                Vault vault = Vault.open(path, password);
+                System.out.printf("Unlock #%d: %.1fms%n", run + 1, (System.nanoTime() - start) / 1e6);
+                vault.close();
+            }
+
+            try (Vault vault = Vault.open(path, password)) {
+                TimeInterval timeInterval = new TimeInterval(TOTP.TIME_INTERVAL);
+                Random indexes = new Random(0);
+                // Warm up on other accounts than measured ones: measured
+                // accounts are drawn after the warm-up ones.
+                int warmups = Math.min(samples, count / 2);
+                for (int idx = 0; idx < warmups; idx++) firstCode(vault, idx, timeInterval);
+                long[] latencies = new long[samples];
+                for (int sample = 0; sample < samples; sample++) {
+                    int idx = warmups + indexes.nextInt(count - warmups);
+                    start = System.nanoTime();
+                    firstCode(vault, idx, timeInterval);
+                    latencies[sample] = System.nanoTime() - start;
+                }
+                Arrays.sort(latencies);
+                System.out.printf("First code latency (%d samples): p50=%.1fus p99=%.1fus max=%.1fus%n", samples,
+                        latencies[samples / 2] / 1e3, latencies[(int)(samples * 0.99)] / 1e3, latencies[samples - 1] / 1e3);
+            }
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    private static String firstCode(Vault vault, int idx, TimeInterval timeInterval) throws Exception {
+        Vault.Account account = vault.get(idx);
+        TOTP totp = new TOTP(account.getLabel(), account.getSecret(), account.getHashAlgorithm(), account.getOtpLength(), timeInterval);
+        return totp.generate(timeInterval.getValue());
+    }
+
+}
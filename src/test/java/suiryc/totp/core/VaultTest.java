@@ -0,0 +1,175 @@
+package suiryc.totp.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+public class VaultTest {
+
+    // Keep tests fast.
+    private static final int KDF_ITERATIONS = 1000;
+
+    @Test
+    public void roundTrip() throws Exception {
+        // base32("12345678901234567890")
+        String secret = "GEZDGNBVGY3TQOJQGEZDGNBVGY3TQOJQ";
+        // base32("12345678901234567890123456789012")
+        String secret256 = "GEZDGNBVGY3TQOJQGEZDGNBVGY3TQOJQGEZDGNBVGY3TQOJQGEZA====";
+        List<Vault.Account> accounts = Arrays.asList(
+                new Vault.Account("SHA1", "HMACSHA1", 8, 30, SecretSource.base32(secret)),
+                new Vault.Account("SHA256", "HMACSHA256", 8, 60, SecretSource.base32(secret256))
+        );
+
+        Path path = Files.createTempFile("vault", ".bin");
+        try {
+            Vault.write(path, "password".toCharArray(), KDF_ITERATIONS, accounts);
+            try (Vault vault = Vault.open(path, "password".toCharArray())) {
+                assertEquals(2, vault.size());
+
+                Vault.Account account = vault.get(1);
+                assertEquals("SHA256", account.getLabel());
+                assertEquals("HMACSHA256", account.getHashAlgorithm());
+                assertEquals(8, account.getOtpLength());
+                assertEquals(60, account.getInterval());
+                TOTP totp = new TOTP(account.getLabel(), account.getSecret(), account.getHashAlgorithm(),
+                        account.getOtpLength(), new TimeInterval(account.getInterval()));
+                assertEquals("46119246", totp.generate(1));
+
+                account = vault.get(0);
+                assertEquals("SHA1", account.getLabel());
+                totp = new TOTP(account.getLabel(), account.getSecret(), account.getHashAlgorithm(),
+                        account.getOtpLength(), new TimeInterval(account.getInterval()));
+                assertEquals("94287082", totp.generate(1));
+                assertEquals("07081804", totp.generate(37037036));
+            }
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    @Test
+    public void wrongPassword() throws Exception {
+        Path path = Files.createTempFile("vault", ".bin");
+        try {
+            Vault.write(path, "password".toCharArray(), KDF_ITERATIONS,
+                    Arrays.asList(new Vault.Account("label", "HMACSHA1", 6, 30, SecretSource.base32("MZXW6YTBOI======"))));
+            try {
+                Vault.open(path, "wrong".toCharArray()).close();
+                fail("Vault opened with wrong password");
+            } catch (Exception ex) {
+                assertEquals("Invalid vault password", ex.getMessage());
+            }
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    @Test
+    public void tamperedMetadata() throws Exception {
+        Path path = Files.createTempFile("vault", ".bin");
+        try {
+            Vault.write(path, "password".toCharArray(), KDF_ITERATIONS, Arrays.asList(
+                    new Vault.Account("alice", "HMACSHA1", 6, 30, SecretSource.base32("MZXW6YTBOI======")),
+                    new Vault.Account("bobby", "HMACSHA1", 6, 30, SecretSource.base32("MZXW6YTB"))
+            ));
+            // Change the label of the first account.
+            byte[] bytes = Files.readAllBytes(path);
+            int labelIdx = indexOf(bytes, "alice".getBytes(StandardCharsets.UTF_8));
+            assertTrue(labelIdx > 0);
+            bytes[labelIdx] = 'A';
+            Files.write(path, bytes);
+
+            try (Vault vault = Vault.open(path, "password".toCharArray())) {
+                Vault.Account account = vault.get(0);
+                assertEquals("Alice", account.getLabel());
+                try {
+                    account.getSecret().getSecret();
+                    fail("Secret decrypted with tampered metadata");
+                } catch (Exception ex) {
+                    // Expected.
+                }
+                // Other accounts are not affected.
+                assertEquals(5, vault.get(1).getSecret().getSecret().length);
+            }
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    @Test
+    public void corrupted() throws Exception {
+        Path path = Files.createTempFile("vault", ".bin");
+        try {
+            Vault.write(path, "password".toCharArray(), KDF_ITERATIONS,
+                    Arrays.asList(new Vault.Account("label", "HMACSHA1", 6, 30, SecretSource.base32("MZXW6YTBOI======"))));
+            byte[] original = Files.readAllBytes(path);
+
+            // KDF iterations (after magic and version).
+            byte[] bytes = original.clone();
+            ByteBuffer.wrap(bytes).putInt(12, Integer.MAX_VALUE);
+            Files.write(path, bytes);
+            try {
+                Vault.open(path, "password".toCharArray()).close();
+                fail("Vault opened with invalid KDF iterations");
+            } catch (Exception ex) {
+                assertEquals("Invalid vault KDF iterations: " + Integer.MAX_VALUE, ex.getMessage());
+            }
+
+            // Record length (first index entry, right after the 64 bytes
+            // header).
+            bytes = original.clone();
+            ByteBuffer.wrap(bytes).putInt(64 + Long.BYTES, Integer.MAX_VALUE);
+            Files.write(path, bytes);
+            try (Vault vault = Vault.open(path, "password".toCharArray())) {
+                vault.get(0);
+                fail("Vault record read with invalid length");
+            } catch (IOException ex) {
+                assertTrue(ex.getMessage().startsWith("Invalid vault record"));
+            }
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    @Test
+    public void failedWrite() throws Exception {
+        Path path = Files.createTempFile("vault", ".bin");
+        try {
+            Vault.write(path, "password".toCharArray(), KDF_ITERATIONS,
+                    Arrays.asList(new Vault.Account("label", "HMACSHA1", 6, 30, SecretSource.base32("MZXW6YTBOI======"))));
+            byte[] original = Files.readAllBytes(path);
+
+            // Failing to write the new vault leaves the existing one untouched.
+            try {
+                Vault.write(path, "password".toCharArray(), KDF_ITERATIONS,
+                        Arrays.asList(new Vault.Account("label", "HMACSHA1", 6, 30, () -> { throw new Exception("Failure"); })));
+                fail("Vault written with failing secret");
+            } catch (Exception ex) {
+                assertEquals("Failure", ex.getMessage());
+            }
+            assertTrue(Arrays.equals(original, Files.readAllBytes(path)));
+            try (Stream<Path> files = Files.list(path.getParent())) {
+                assertEquals(0, files.filter(p -> p.getFileName().toString().startsWith(path.getFileName() + ".")).count());
+            }
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    private static int indexOf(byte[] bytes, byte[] pattern) {
+        for (int idx = 0; idx + pattern.length <= bytes.length; idx++) {
+            if (Arrays.equals(Arrays.copyOfRange(bytes, idx, idx + pattern.length), pattern)) return idx;
+        }
+        return -1;
+    }
+
+}